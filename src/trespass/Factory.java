@@ -1,13 +1,14 @@
 package trespass;
 
 import trespass.annotation.DefaultInstanceProvider;
+import trespass.annotation.Memoize;
 import trespass.annotation.ProxyClass;
 import trespass.annotation.ProxyField;
 
 import java.lang.reflect.*;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -22,8 +23,14 @@ import java.util.Map;
 public final class Factory
 {
    private static final String REGEX_CLEAN_ARRAY_TOSTRING = "[\\Q[\\E\\Q]\\E]|class |interface ";
-   private static final Map<Class<?>, ProxyWrapper<?,? extends Trespasser<?>>> validProxies =
-      new HashMap<Class<?>, ProxyWrapper<?,? extends Trespasser<?>>>();
+   /**
+    * Name of the system property that, when set to true, makes every proxy interface be fully
+    * validated when its first proxy is created, even if it's annotated with
+    * {@link ProxyClass#lazyValidation() lazyValidation}. Useful for tests.
+    */
+   public static final String STRICT_VALIDATION_PROPERTY = "trespass.validation.strict";
+   private static final ConcurrentMap<Class<?>, ProxyWrapper<?,? extends Trespasser<?>>> validProxies =
+      new ConcurrentHashMap<Class<?>, ProxyWrapper<?,? extends Trespasser<?>>>();
 
    // disallow construction
    private Factory() {}
@@ -67,36 +74,78 @@ public final class Factory
          Method instanceProvider = null;
          final Class<T> target = validateTargetClass(proxy, loader);
          final Method[] proxyMethods = proxy.getMethods();
+         final boolean lazy = proxy.getAnnotation(ProxyClass.class).lazyValidation() &&
+                              !Boolean.getBoolean(STRICT_VALIDATION_PROPERTY);
+         final LazyValidator<T,P> validator = lazy ? new LazyValidator<T,P>(proxy, target, loader) : null;
 
          for (Method m : proxyMethods)
          {
             final Class<?>[] proxyParams = m.getParameterTypes();
             if (Trespasser.PROXY_INST_GETTER.equals(m.getName()) && proxyParams.length == 0 && m.getReturnType().isAssignableFrom(target))
             {
+               if (validator != null)
+               {
+                  validator.validated.put(m, Boolean.TRUE);
+               }
                continue;
             }
             if (instanceProvider == null &&
                 m.isAnnotationPresent(DefaultInstanceProvider.class))
             {
+               if (m.isAnnotationPresent(Memoize.class))
+               {
+                  validateMemoizedMethod(proxy, m, proxyParams);
+               }
                instanceProvider = m;
                validateProxyInstanceProvider(proxy, m, proxyParams, target, loader);
+               if (validator != null)
+               {
+                  validator.validated.put(m, Boolean.TRUE);
+               }
             }
-            else if (m.isAnnotationPresent(ProxyField.class))
-            {
-               final String fieldName = getProxyFieldName(m);
-               validateFieldProxy(proxy, m, proxyParams, target, fieldName, loader);
-            }
-            else
+            else if (validator == null)
             {
-               validateProxyMethod(proxy, m, proxyParams, target, loader);
+               validateProxyMember(proxy, m, proxyParams, target, loader);
             }
          }
-         info = new ProxyWrapper<T,P>(proxyClass, target, instanceProvider);
-         validProxies.put(proxyClass, info);
+         info = new ProxyWrapper<T,P>(proxyClass, target, instanceProvider,
+                                      proxy.getAnnotation(ProxyClass.class).canonical(), validator);
+         // another thread may have validated the same interface concurrently, in which case its
+         // wrapper must win so that shared targets and canonical proxies remain unique
+         @SuppressWarnings("unchecked")
+         final ProxyWrapper<T,P> existing = (ProxyWrapper<T,P>)validProxies.putIfAbsent(proxyClass, info);
+         if (existing != null)
+         {
+            info = existing;
+         }
       }
       return info;
    }
-   
+
+   private static <T, P extends Trespasser<T>> void validateProxyMember(
+		   final Class<P> proxy,
+		   final Method proxyMethod,
+		   final Class<?>[] proxyParams,
+		   final Class<T> target,
+		   final ClassLoader loader)
+      throws NoSuchMethodException, NoSuchFieldException, InvalidSignatureException,
+             ClassNotFoundException
+   {
+      if (proxyMethod.isAnnotationPresent(Memoize.class))
+      {
+         validateMemoizedMethod(proxy, proxyMethod, proxyParams);
+      }
+      if (proxyMethod.isAnnotationPresent(ProxyField.class))
+      {
+         final String fieldName = getProxyFieldName(proxyMethod);
+         validateFieldProxy(proxy, proxyMethod, proxyParams, target, fieldName, loader);
+      }
+      else
+      {
+         validateProxyMethod(proxy, proxyMethod, proxyParams, target, loader);
+      }
+   }
+
    private static <T, P extends Trespasser<T>> void validateProxyMethod(
 		   final Class<P> proxy,
 		   final Method proxyMethod,
@@ -139,7 +188,8 @@ public final class Factory
    {
       try
       {
-         final Field field = target.getDeclaredField(targetField);
+         final Field[] path = FieldPath.resolve(target, targetField);
+         final Field field = path[path.length - 1];
          final Class<?>[] types = GenericProxyHandler.getTargetParamTypes(proxyMethod, loader);
          final Class<?> result = proxyMethod.getReturnType();
          boolean valid = types.length == 1 && result != null && result.isPrimitive() &&
@@ -165,12 +215,13 @@ public final class Factory
       catch(final NoSuchFieldException ex)
       {
          final String msg = String.format(
-            "Field %s annotated on %s.%s(%s) is not declared in %s",
+            "Field %s annotated on %s.%s(%s) can't be resolved from %s: no such field %s",
             targetField,
             proxy.getName(),
             proxyMethod.getName(),
             Arrays.toString(proxyParams).replaceAll(REGEX_CLEAN_ARRAY_TOSTRING, ""),
-            target.getName()
+            target.getName(),
+            ex.getMessage()
          );
          final NoSuchFieldException newEx = new NoSuchFieldException(msg);
          newEx.initCause(ex);
@@ -178,6 +229,30 @@ public final class Factory
       }
    }
 
+   private static <T, P extends Trespasser<T>> void validateMemoizedMethod(
+		   final Class<P> proxy,
+		   final Method proxyMethod,
+		   final Class<?>[] proxyParams)
+      throws InvalidSignatureException
+   {
+      final boolean valid = proxyMethod.getReturnType() != void.class &&
+                            proxyMethod.getAnnotation(Memoize.class).maximumSize() > 0 &&
+                            !proxyMethod.isAnnotationPresent(ProxyField.class) &&
+                            !proxyMethod.isAnnotationPresent(DefaultInstanceProvider.class);
+      if (!valid)
+      {
+         final String msg = String.format(
+            "Method %s.%s(%s) returning %s is incompatible with annotation %s",
+            proxy.getName(),
+            proxyMethod.getName(),
+            Arrays.toString(proxyParams).replaceAll(REGEX_CLEAN_ARRAY_TOSTRING, ""),
+            proxyMethod.getReturnType().getName(),
+            Memoize.class.getName()
+         );
+         throw new InvalidSignatureException(msg);
+      }
+   }
+
    private static <T, P extends Trespasser<T>> void validateProxyInstanceProvider(
 		   final Class<P> proxy,
 		   final Method proxyMethod,
@@ -288,7 +363,8 @@ public final class Factory
     * forward calls on the proxy interface to this encapsulated instance.</p>
     *
     * <p>This method will do its best to validate the given interface's structure
-    * in order to make sure it properly matches its target and fail as early as possible.</p>
+    * in order to make sure it properly matches its target and fail as early as possible, unless
+    * the interface is annotated with {@link ProxyClass#lazyValidation() lazyValidation}.</p>
     *
     * @param <T> The target type of the proxy interface extending InternalProxy
     * @param <P> Type representing the proxy interface extending InternalProxy
@@ -303,7 +379,8 @@ public final class Factory
     * and automatically forward calls to the target class. If a @DefaultInstanceProvider
     * is defined in the interface, it will be used to obtain an instance of
     * the target class that will be encapsulated by the proxy and then used
-    * as the target instance for all forwarded calls.
+    * as the target instance for all forwarded calls, according with its
+    * {@link DefaultInstanceProvider#scope() scope}.
     * @see Trespasser
     * @see DefaultInstanceProvider
     * @see trespass.annotation.ProxyField
@@ -315,8 +392,12 @@ public final class Factory
       try
       {
          final ProxyWrapper<T,P> wrapper = validateProxyInterface(proxyIfc, loader);
-         final GenericProxyHandler<T> handler = new GenericProxyHandler<T>(
-            wrapper.targetClass, wrapper.targetInstanceProvider, args);
+         if (wrapper.canonical && wrapper.targetInstanceProvider == null)
+         {
+            return wrapper.getStaticProxyInstance();
+         }
+         final GenericProxyHandler<T> handler = new GenericProxyHandler<T>(wrapper.validator,
+            wrapper.targetClass, wrapper.getTargetInstance(args));
          return wrapper.newProxyInstance(handler);
       }
       catch(final RuntimeException ex)
@@ -357,7 +438,11 @@ public final class Factory
             throw new IllegalArgumentException(target + " is not a valid instance of "+
                                                wrapper.targetClass.getName());
          }
-         final GenericProxyHandler<T> handler = new GenericProxyHandler<T>(target);
+         if (wrapper.canonical)
+         {
+            return wrapper.getObjectProxyInstance(target);
+         }
+         final GenericProxyHandler<T> handler = new GenericProxyHandler<T>(wrapper.validator, target);
          return wrapper.newProxyInstance(handler);
       }
       catch(final RuntimeException ex)
@@ -370,6 +455,71 @@ public final class Factory
       }
    }
 
+   /**
+    * <p>Create a proxy equivalent to the given one, sharing the same target, but that will also
+    * record every invocation made through it, except for {@link Trespasser#getProxyInstance()},
+    * using the given recorder.</p>
+    *
+    * <p>Recorded invocations can later be replayed, against a fresh target for example,
+    * with an {@link InvocationReplayer}.</p>
+    *
+    * @param <T> The target type of the proxy interface extending InternalProxy
+    * @param <P> Type representing the proxy interface extending InternalProxy
+    * @param proxy A proxy previously created by this factory
+    * @param recorder The recorder that will append invocations to its log
+    * @return A recording dynamic proxy implementing the same interface as the given proxy
+    * @see InvocationRecorder
+    * @see InvocationReplayer
+    */
+   @SuppressWarnings("unchecked")
+   public static <T, P extends Trespasser<T>> P createRecordingProxy(
+      final P proxy, final InvocationRecorder recorder)
+   {
+      if (recorder == null)
+      {
+         throw new IllegalArgumentException("A recorder is required");
+      }
+      final ProxyWrapper<T,P> wrapper = (ProxyWrapper<T,P>)validProxies.get(proxy.getClass());
+      final InvocationHandler handler = Proxy.isProxyClass(proxy.getClass()) ?
+                                        Proxy.getInvocationHandler(proxy) : null;
+      if (wrapper == null || !(handler instanceof GenericProxyHandler))
+      {
+         throw new IllegalArgumentException(proxy.getClass().getName() +
+                                            " is not a proxy created by " + Factory.class.getName());
+      }
+      try
+      {
+         return wrapper.newProxyInstance(((GenericProxyHandler<T>)handler).recordingTo(recorder));
+      }
+      catch(final RuntimeException ex)
+      {
+         throw ex;
+      }
+      catch(final Exception ex)
+      {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * <p>Obtain the current statistics of the result cache of a proxy method annotated
+    * with {@link Memoize}.</p>
+    *
+    * @param proxyMethod A method declared in a proxy interface and annotated with {@link Memoize},
+    * such as {@code MyProxy.class.getMethod("digest", byte[].class)}
+    * @return A snapshot of the statistics of the given method's result cache, shared by all
+    * proxies implementing the method's interface
+    */
+   public static MemoizeStatistics getMemoizeStatistics(final Method proxyMethod)
+   {
+      if (!proxyMethod.isAnnotationPresent(Memoize.class))
+      {
+         throw new IllegalArgumentException(proxyMethod + " is not annotated with @" +
+                                            Memoize.class.getSimpleName());
+      }
+      return MemoizedResults.forMethod(proxyMethod).getStatistics();
+   }
+
    static String getProxyFieldName(final Method m) throws InvalidSignatureException
    {
       final ProxyField proxyField = m.getAnnotation(ProxyField.class);
@@ -400,19 +550,134 @@ public final class Factory
       throw new InvalidSignatureException(msg);
    }
 
+   /**
+    * Validates each member of a proxy interface annotated with {@link ProxyClass#lazyValidation()
+    * lazyValidation} only when it's first invoked.
+    */
+   static final class LazyValidator<T, P extends Trespasser<T>>
+   {
+      private final Class<P> proxy;
+      private final Class<T> target;
+      private final ClassLoader loader;
+      private final ConcurrentMap<Method, Boolean> validated = new ConcurrentHashMap<Method, Boolean>();
+
+      private LazyValidator(final Class<P> proxy, final Class<T> target, final ClassLoader loader)
+      {
+         this.proxy = proxy;
+         this.target = target;
+         this.loader = loader;
+      }
+
+      void validate(final Method proxyMethod) throws Exception
+      {
+         if (!validated.containsKey(proxyMethod))
+         {
+            validateProxyMember(proxy, proxyMethod, proxyMethod.getParameterTypes(), target, loader);
+            validated.put(proxyMethod, Boolean.TRUE);
+         }
+      }
+   }
+
    private static final class ProxyWrapper<T, P extends Trespasser<T>>
    {
       private final Constructor<P> proxyConstructor;
       private final Class<T> targetClass;
       private final Method targetInstanceProvider;
+      private final DefaultInstanceProvider.Scope scope;
+      private final boolean canonical;
+      private final LazyValidator<T,P> validator;
+      private final WeakIdentityProxyCache<T,P> objectProxies;
+      private volatile GenericProxyHandler.TargetInstance<T> sharedTargetInstance;
+      private volatile P staticProxy;
 
       private ProxyWrapper(final Class<P> proxy,
                            final Class<T> targetClass,
-                           final Method instanceProvider) throws NoSuchMethodException
+                           final Method instanceProvider,
+                           final boolean canonical,
+                           final LazyValidator<T,P> validator) throws NoSuchMethodException
       {
+         this.validator = validator;
          this.proxyConstructor = proxy.getConstructor(InvocationHandler.class);
          this.targetClass = targetClass;
          this.targetInstanceProvider = instanceProvider;
+         this.canonical = canonical;
+         this.objectProxies = canonical ? new WeakIdentityProxyCache<T,P>() : null;
+         this.scope = instanceProvider != null ?
+                      instanceProvider.getAnnotation(DefaultInstanceProvider.class).scope() :
+                      DefaultInstanceProvider.Scope.EAGER;
+      }
+
+      private GenericProxyHandler.TargetInstance<T> getTargetInstance(final Object[] args)
+         throws Exception
+      {
+         if (targetInstanceProvider == null)
+         {
+            return new GenericProxyHandler.FixedTargetInstance<T>(null);
+         }
+         switch (scope)
+         {
+            case LAZY:
+               return new GenericProxyHandler.LazyTargetInstance<T>(
+                  targetClass, targetInstanceProvider, args);
+            case SHARED:
+            case THREAD:
+               return getSharedTargetInstance(args);
+            default:
+               return new GenericProxyHandler.FixedTargetInstance<T>(
+                  GenericProxyHandler.invokeInstanceProvider(targetClass, targetInstanceProvider, args));
+         }
+      }
+
+      private GenericProxyHandler.TargetInstance<T> getSharedTargetInstance(final Object[] args)
+      {
+         GenericProxyHandler.TargetInstance<T> result = sharedTargetInstance;
+         if (result == null)
+         {
+            synchronized (this)
+            {
+               result = sharedTargetInstance;
+               if (result == null)
+               {
+                  result = scope == DefaultInstanceProvider.Scope.THREAD ?
+                     new GenericProxyHandler.ThreadTargetInstance<T>(targetClass, targetInstanceProvider, args) :
+                     new GenericProxyHandler.LazyTargetInstance<T>(targetClass, targetInstanceProvider, args);
+                  sharedTargetInstance = result;
+               }
+            }
+         }
+         return result;
+      }
+
+      private P getStaticProxyInstance()
+         throws InstantiationException, IllegalAccessException, InvocationTargetException
+      {
+         P result = staticProxy;
+         if (result == null)
+         {
+            synchronized (this)
+            {
+               result = staticProxy;
+               if (result == null)
+               {
+                  result = newProxyInstance(new GenericProxyHandler<T>(validator,
+                     targetClass, new GenericProxyHandler.FixedTargetInstance<T>(null)));
+                  staticProxy = result;
+               }
+            }
+         }
+         return result;
+      }
+
+      private P getObjectProxyInstance(final T target)
+         throws InstantiationException, IllegalAccessException, InvocationTargetException
+      {
+         final P proxy = objectProxies.get(target);
+         if (proxy != null)
+         {
+            return proxy;
+         }
+         return objectProxies.putIfAbsent(target,
+            newProxyInstance(new GenericProxyHandler<T>(validator, target)));
       }
 
       private P newProxyInstance(final GenericProxyHandler<T> handler)
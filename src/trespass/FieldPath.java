@@ -0,0 +1,255 @@
+package trespass;
+
+import trespass.annotation.ProxyField;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chain of resolved fields mapped by a proxy method annotated with {@link ProxyField}, which may
+ * name either a single field or a dot-separated path of fields, such as "a.b.c".
+ *
+ * <p>Paths are resolved only once per proxy method and target class, so proxies of the same interface
+ * over different target classes don't evict each other's paths. Each hop is looked up among the
+ * fields declared by the type declared for the previous hop.</p>
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+final class FieldPath
+{
+   private static final ConcurrentMap<Method, ClassValue<FieldPath>> paths =
+      new ConcurrentHashMap<Method, ClassValue<FieldPath>>();
+
+   private final Class<?> targetClass;
+   private final Field[] fields;
+   private final boolean[] statics;
+   private final boolean nullSafe;
+
+   private FieldPath(final Class<?> targetClass, final Field[] fields, final boolean nullSafe)
+   {
+      this.targetClass = targetClass;
+      this.fields = fields;
+      this.statics = new boolean[fields.length];
+      for (int i = 0; i < fields.length; i++)
+      {
+         fields[i].setAccessible(true);
+         statics[i] = Modifier.isStatic(fields[i].getModifiers());
+      }
+      this.nullSafe = nullSafe;
+   }
+
+   static FieldPath forMethod(final Method proxyMethod, final Class<?> targetClass) throws Exception
+   {
+      ClassValue<FieldPath> pathsByClass = paths.get(proxyMethod);
+      if (pathsByClass == null)
+      {
+         final ClassValue<FieldPath> newPaths = new ClassValue<FieldPath>()
+         {
+            @Override
+            protected FieldPath computeValue(final Class<?> type)
+            {
+               try
+               {
+                  return new FieldPath(type, resolve(type, Factory.getProxyFieldName(proxyMethod)),
+                                       proxyMethod.getAnnotation(ProxyField.class).nullSafe());
+               }
+               catch(final Exception ex)
+               {
+                  throw new UnresolvedPathException(ex);
+               }
+            }
+         };
+         pathsByClass = paths.putIfAbsent(proxyMethod, newPaths);
+         if (pathsByClass == null)
+         {
+            pathsByClass = newPaths;
+         }
+      }
+      try
+      {
+         return pathsByClass.get(targetClass);
+      }
+      catch(final UnresolvedPathException ex)
+      {
+         throw (Exception)ex.getCause();
+      }
+   }
+
+   /**
+    * Resolves each field named by the given dot-separated path, starting from the given class.
+    */
+   static Field[] resolve(final Class<?> targetClass, final String path) throws NoSuchFieldException
+   {
+      final String[] names = path.split("\\.", -1);
+      final Field[] fields = new Field[names.length];
+      Class<?> owner = targetClass;
+      for (int i = 0; i < names.length; i++)
+      {
+         fields[i] = getDeclaredField(owner, names[i]);
+         owner = fields[i].getType();
+      }
+      return fields;
+   }
+
+   private static Field getDeclaredField(final Class<?> owner, final String name) throws NoSuchFieldException
+   {
+      try
+      {
+         return owner.getDeclaredField(name);
+      }
+      catch(final NoSuchFieldException ex)
+      {
+         if (name.isEmpty())
+         {
+            throw ex;
+         }
+         try
+         {
+            return owner.getDeclaredField(name.substring(0, 1).toUpperCase() + name.substring(1));
+         }
+         catch(final NoSuchFieldException capitalizedEx)
+         {
+            throw ex;
+         }
+      }
+   }
+
+   /**
+    * @return The last field of the path
+    */
+   Field getLastField()
+   {
+      return fields[fields.length - 1];
+   }
+
+   /**
+    * @return Whether the first field of the path is static, in which case no target instance is needed
+    */
+   boolean isStatic()
+   {
+      return statics[0];
+   }
+
+   /**
+    * Reads the last field of the path. A null owner of that field, such as a missing target instance,
+    * is only tolerated by null-safe paths; otherwise the field access fails as usual.
+    */
+   Object get(final Object target, final Class<?> resultType) throws IllegalAccessException
+   {
+      final Object owner = getLastOwner(target);
+      if (nullSafe && owner == null && !statics[fields.length - 1])
+      {
+         return resultType.isPrimitive() ? defaultValue(resultType) : null;
+      }
+      return fields[fields.length - 1].get(owner);
+   }
+
+   /**
+    * Reads the last field of the path, which must be of a numeric primitive type, without boxing.
+    * @return The field's value, or NaN if a null reference was found along a null-safe path
+    */
+   double getDouble(final Object target) throws IllegalAccessException
+   {
+      final Object owner = getLastOwner(target);
+      if (nullSafe && owner == null && !statics[fields.length - 1])
+      {
+         return Double.NaN;
+      }
+      return fields[fields.length - 1].getDouble(owner);
+   }
+
+   void set(final Object target, final Object value) throws IllegalAccessException
+   {
+      final Object owner = getLastOwner(target);
+      if (nullSafe && owner == null && !statics[fields.length - 1])
+      {
+         return;
+      }
+      fields[fields.length - 1].set(owner, value);
+   }
+
+   /**
+    * Walks all but the last field of the path, returning the object declaring the last field.
+    * Only returns null, instead of failing, when a null reference is found along a null-safe path.
+    */
+   private Object getLastOwner(final Object target) throws IllegalAccessException
+   {
+      Object current = target;
+      final int last = fields.length - 1;
+      for (int i = 0; i < last; i++)
+      {
+         current = fields[i].get(statics[i] ? null : current);
+         if (current == null)
+         {
+            if (nullSafe)
+            {
+               return null;
+            }
+            throw new NullPointerException(String.format(
+               "Field %s is null while traversing %s", fields[i].getName(), this));
+         }
+      }
+      return current;
+   }
+
+   private static Object defaultValue(final Class<?> primitive)
+   {
+      if (primitive == boolean.class)
+      {
+         return Boolean.FALSE;
+      }
+      if (primitive == char.class)
+      {
+         return Character.valueOf((char)0);
+      }
+      if (primitive == byte.class)
+      {
+         return Byte.valueOf((byte)0);
+      }
+      if (primitive == short.class)
+      {
+         return Short.valueOf((short)0);
+      }
+      if (primitive == int.class)
+      {
+         return Integer.valueOf(0);
+      }
+      if (primitive == long.class)
+      {
+         return Long.valueOf(0);
+      }
+      if (primitive == float.class)
+      {
+         return Float.valueOf(0);
+      }
+      return Double.valueOf(0);
+   }
+
+   /**
+    * Carries checked exceptions out of {@link ClassValue#computeValue}.
+    */
+   private static final class UnresolvedPathException extends RuntimeException
+   {
+      private static final long serialVersionUID = 1L;
+
+      private UnresolvedPathException(final Exception cause)
+      {
+         super(cause);
+      }
+   }
+
+   @Override
+   public String toString()
+   {
+      final StringBuilder sb = new StringBuilder(targetClass.getName());
+      for (Field f : fields)
+      {
+         sb.append('.').append(f.getName());
+      }
+      return sb.toString();
+   }
+}
@@ -0,0 +1,420 @@
+package trespass;
+
+import trespass.annotation.ProxyField;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Publishes the values of fields of live objects as gauges, which can be scraped in the
+ * Prometheus text exposition format, either via {@link #scrape(Appendable)} or via a lightweight
+ * local HTTP endpoint started with {@link #startHttpServer(InetSocketAddress)}.</p>
+ *
+ * <p>Gauges are registered by giving a target object and a proxy interface mapping it. Each getter of
+ * that interface annotated with {@link ProxyField} and returning a numeric primitive type becomes a
+ * gauge. All gauges are sampled, without boxing, by one single scheduler thread, in batches of gauges
+ * sharing the same sampling interval. Scrapes only read the latest sampled values.</p>
+ *
+ * <p>Registered targets are only weakly referenced: once a target is garbage collected, its gauges
+ * are dropped.</p>
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+public final class GaugeRegistry implements Closeable
+{
+   private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+   private final ScheduledExecutorService scheduler;
+   private final Map<Long, Batch> batches = new HashMap<Long, Batch>();
+   private final Map<String, Gauge> gauges = new TreeMap<String, Gauge>();
+   private HttpServer server;
+   private boolean closed;
+
+   public GaugeRegistry()
+   {
+      final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+      {
+         public Thread newThread(final Runnable r)
+         {
+            final Thread t = new Thread(r, "trespass-gauge-sampler");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      executor.setRemoveOnCancelPolicy(true);
+      this.scheduler = executor;
+   }
+
+   /**
+    * <p>Register one gauge for each getter of the given proxy interface that is annotated with
+    * {@link ProxyField} and returns a numeric primitive type.</p>
+    *
+    * <p>Each gauge is named after the given prefix followed by its field name (or path of fields),
+    * with any character that isn't valid in a Prometheus metric name replaced by an underscore.
+    * Getters mapping the same field path, such as a null-safe and a strict variant, yield one single
+    * gauge, sampled via the null-safe getter if there is one.</p>
+    *
+    * @param <T> The target type of the proxy interface
+    * @param <P> Type representing the proxy interface
+    * @param prefix Prefix of the names of all gauges registered for the given target
+    * @param target The object whose fields will be sampled
+    * @param proxyIfc The interface extending {@link Trespasser} that maps the target's fields
+    * @param interval How often gauges will be sampled
+    * @param unit Time unit of the given interval
+    * @return The names of the registered gauges
+    * @throws IllegalArgumentException If no gauge can be registered from the given interface
+    * or a gauge with the same name is already registered
+    * @throws IllegalStateException If the registry is already closed
+    */
+   public <T, P extends Trespasser<T>> List<String> register(final String prefix,
+                                                             final T target,
+                                                             final Class<P> proxyIfc,
+                                                             final long interval,
+                                                             final TimeUnit unit)
+   {
+      if (interval <= 0)
+      {
+         throw new IllegalArgumentException("Invalid interval: " + interval);
+      }
+      // make sure the interface is valid and matches the target
+      Factory.createProxyToObject(target, proxyIfc);
+      // getters mapping the same field path would yield gauges with the same name
+      final Map<String, Method> getters = new TreeMap<String, Method>();
+      final List<Gauge> newGauges = new ArrayList<Gauge>();
+      try
+      {
+         for (Method m : proxyIfc.getMethods())
+         {
+            if (m.isAnnotationPresent(ProxyField.class) && m.getParameterTypes().length == 0 &&
+                isNumeric(m.getReturnType()))
+            {
+               final String name = sanitize(prefix + "_" + Factory.getProxyFieldName(m));
+               final Method previous = getters.get(name);
+               if (previous == null ||
+                   (!previous.getAnnotation(ProxyField.class).nullSafe() &&
+                    m.getAnnotation(ProxyField.class).nullSafe()))
+               {
+                  getters.put(name, m);
+               }
+            }
+         }
+         for (Map.Entry<String, Method> getter : getters.entrySet())
+         {
+            newGauges.add(new Gauge(getter.getKey(), target,
+                                    FieldPath.forMethod(getter.getValue(), target.getClass())));
+         }
+      }
+      catch(final RuntimeException ex)
+      {
+         throw ex;
+      }
+      catch(final Exception ex)
+      {
+         throw new RuntimeException(ex);
+      }
+      if (newGauges.isEmpty())
+      {
+         throw new IllegalArgumentException(proxyIfc.getName() + " doesn't declare any numeric @" +
+                                            ProxyField.class.getSimpleName() + " getter");
+      }
+      final List<String> names = new ArrayList<String>(newGauges.size());
+      synchronized (this)
+      {
+         if (closed)
+         {
+            throw new IllegalStateException("Registry is already closed");
+         }
+         for (Gauge gauge : newGauges)
+         {
+            if (gauges.containsKey(gauge.name) || names.contains(gauge.name))
+            {
+               throw new IllegalArgumentException("Gauge " + gauge.name + " is already registered");
+            }
+            names.add(gauge.name);
+         }
+         final long intervalNanos = unit.toNanos(interval);
+         Batch batch = batches.get(intervalNanos);
+         if (batch == null)
+         {
+            batch = new Batch(intervalNanos);
+            // schedule before changing any state, so a failure leaves the registry untouched
+            batch.start();
+            batches.put(intervalNanos, batch);
+         }
+         for (Gauge gauge : newGauges)
+         {
+            gauges.put(gauge.name, gauge);
+            batch.add(gauge);
+         }
+      }
+      return names;
+   }
+
+   /**
+    * Removes all gauges registered for the given target.
+    * @param target A target previously given to {@link #register}
+    */
+   public synchronized void unregister(final Object target)
+   {
+      for (Batch batch : new ArrayList<Batch>(batches.values()))
+      {
+         batch.removeTarget(target);
+      }
+   }
+
+   /**
+    * Writes the latest sampled value of every registered gauge in the Prometheus text exposition format.
+    * Gauges that haven't been sampled yet, or whose last sampling failed, are reported as NaN.
+    */
+   public void scrape(final Appendable out) throws IOException
+   {
+      final Gauge[] snapshot;
+      synchronized (this)
+      {
+         snapshot = gauges.values().toArray(new Gauge[gauges.size()]);
+      }
+      for (Gauge gauge : snapshot)
+      {
+         out.append("# TYPE ").append(gauge.name).append(" gauge\n");
+         out.append(gauge.name).append(' ').append(format(gauge.value)).append('\n');
+      }
+   }
+
+   /**
+    * Starts serving {@link #scrape scrapes} via HTTP, on path /metrics, at the given address.
+    * @return The address the server is bound to, which tells the actual port when port 0 was requested
+    */
+   public synchronized InetSocketAddress startHttpServer(final InetSocketAddress address) throws IOException
+   {
+      if (server != null)
+      {
+         throw new IllegalStateException("HTTP server already started");
+      }
+      server = HttpServer.create(address, 0);
+      server.createContext("/metrics", new HttpHandler()
+      {
+         public void handle(final HttpExchange exchange) throws IOException
+         {
+            final StringBuilder sb = new StringBuilder();
+            scrape(sb);
+            final byte[] body = sb.toString().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            final OutputStream out = exchange.getResponseBody();
+            try
+            {
+               out.write(body);
+            }
+            finally
+            {
+               out.close();
+            }
+         }
+      });
+      server.start();
+      return server.getAddress();
+   }
+
+   /**
+    * Stops sampling gauges and the HTTP server, if started. No gauge can be registered afterwards.
+    */
+   public synchronized void close()
+   {
+      closed = true;
+      scheduler.shutdownNow();
+      if (server != null)
+      {
+         server.stop(0);
+         server = null;
+      }
+   }
+
+   private static boolean isNumeric(final Class<?> type)
+   {
+      return type.isPrimitive() && type != void.class && type != boolean.class && type != char.class;
+   }
+
+   private static String sanitize(final String name)
+   {
+      final StringBuilder sb = new StringBuilder(name.length());
+      for (int i = 0; i < name.length(); i++)
+      {
+         final char c = name.charAt(i);
+         final boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' ||
+                               (i > 0 && c >= '0' && c <= '9');
+         sb.append(valid ? c : '_');
+      }
+      return sb.toString();
+   }
+
+   private static String format(final double value)
+   {
+      if (Double.isNaN(value))
+      {
+         return "NaN";
+      }
+      if (Double.isInfinite(value))
+      {
+         return value > 0 ? "+Inf" : "-Inf";
+      }
+      if (value == Math.rint(value) && Math.abs(value) < 1e15)
+      {
+         return Long.toString((long)value);
+      }
+      return Double.toString(value);
+   }
+
+   private synchronized void removeCollected(final Batch batch, final List<Gauge> collected)
+   {
+      for (Gauge gauge : collected)
+      {
+         gauges.remove(gauge.name);
+      }
+      batch.remove(collected);
+   }
+
+   /**
+    * All gauges sampled at the same interval, by the same scheduled task.
+    */
+   private final class Batch implements Runnable
+   {
+      private final long intervalNanos;
+      private volatile Gauge[] members = new Gauge[0];
+      private ScheduledFuture<?> task;
+
+      private Batch(final long intervalNanos)
+      {
+         this.intervalNanos = intervalNanos;
+      }
+
+      // callers hold the registry's lock
+      private void add(final Gauge gauge)
+      {
+         final Gauge[] current = members;
+         final Gauge[] updated = new Gauge[current.length + 1];
+         System.arraycopy(current, 0, updated, 0, current.length);
+         updated[current.length] = gauge;
+         members = updated;
+      }
+
+      // callers hold the registry's lock
+      private void start()
+      {
+         task = scheduler.scheduleAtFixedRate(this, 0, intervalNanos, TimeUnit.NANOSECONDS);
+      }
+
+      // callers hold the registry's lock
+      private void removeTarget(final Object target)
+      {
+         final List<Gauge> removed = new ArrayList<Gauge>();
+         for (Gauge gauge : members)
+         {
+            if (gauge.target.get() == target)
+            {
+               removed.add(gauge);
+               gauges.remove(gauge.name);
+            }
+         }
+         remove(removed);
+      }
+
+      // callers hold the registry's lock
+      private void remove(final List<Gauge> removed)
+      {
+         if (removed.isEmpty())
+         {
+            return;
+         }
+         final List<Gauge> remaining = new ArrayList<Gauge>();
+         for (Gauge gauge : members)
+         {
+            if (!removed.contains(gauge))
+            {
+               remaining.add(gauge);
+            }
+         }
+         members = remaining.toArray(new Gauge[remaining.size()]);
+         if (members.length == 0)
+         {
+            task.cancel(false);
+            task = null;
+            batches.remove(intervalNanos);
+         }
+      }
+
+      public void run()
+      {
+         List<Gauge> collected = null;
+         for (Gauge gauge : members)
+         {
+            if (!gauge.sample())
+            {
+               if (collected == null)
+               {
+                  collected = new ArrayList<Gauge>();
+               }
+               collected.add(gauge);
+            }
+         }
+         if (collected != null)
+         {
+            removeCollected(this, collected);
+         }
+      }
+   }
+
+   private static final class Gauge
+   {
+      private final String name;
+      private final WeakReference<Object> target;
+      private final FieldPath path;
+      private volatile double value = Double.NaN;
+
+      private Gauge(final String name, final Object target, final FieldPath path)
+      {
+         this.name = name;
+         this.target = new WeakReference<Object>(target);
+         this.path = path;
+      }
+
+      /**
+       * @return false if the target has been garbage collected
+       */
+      private boolean sample()
+      {
+         final Object targetObject = target.get();
+         if (targetObject == null)
+         {
+            return false;
+         }
+         try
+         {
+            value = path.getDouble(targetObject);
+         }
+         catch(final Exception ex)
+         {
+            value = Double.NaN;
+         }
+         return true;
+      }
+   }
+}
@@ -2,13 +2,15 @@ package trespass;
 
 import trespass.annotation.Cast;
 import trespass.annotation.DefaultInstanceProvider;
+import trespass.annotation.Memoize;
 import trespass.annotation.ProxyField;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 
 /**
  * This class implements the {@link InvocationHandler} that will be used by any dynamic
@@ -23,42 +25,83 @@ import java.lang.reflect.Method;
 final class GenericProxyHandler<T> implements InvocationHandler
 {
    private final Class<T> targetClass;
-   private final T targetObject;
+   private final TargetInstance<T> target;
+   private final InvocationRecorder recorder;
+   private final Factory.LazyValidator<?,?> validator;
 
-   GenericProxyHandler(final Class<T> targetClass, final Method targetInstanceProvider,
-                       final Object... instanceProviderParams) throws Exception
+   GenericProxyHandler(final Factory.LazyValidator<?,?> validator, final Class<T> targetClass,
+                       final TargetInstance<T> target)
    {
-      this.targetClass = targetClass;
-      if (targetInstanceProvider != null)
-      {
-         this.targetObject = invokeInstanceProvider(targetInstanceProvider,
-        		 
-                                                    instanceProviderParams);
-      }
-      else
-      {
-         this.targetObject = null;
-      }
+      this(validator, targetClass, target, null);
    }
 
    @SuppressWarnings("unchecked")
-   GenericProxyHandler(final T targetObject)
+   GenericProxyHandler(final Factory.LazyValidator<?,?> validator, final T targetObject)
+   {
+      this(validator, (Class<T>)targetObject.getClass(), new FixedTargetInstance<T>(targetObject), null);
+   }
+
+   private GenericProxyHandler(final Factory.LazyValidator<?,?> validator, final Class<T> targetClass,
+                               final TargetInstance<T> target, final InvocationRecorder recorder)
+   {
+      this.validator = validator;
+      this.targetClass = targetClass;
+      this.target = target;
+      this.recorder = recorder;
+   }
+
+   /**
+    * @return A new handler sharing this handler's target, which will also record every invocation
+    */
+   GenericProxyHandler<T> recordingTo(final InvocationRecorder recorder)
    {
-      this.targetObject = targetObject;
-      this.targetClass = (Class<T>)targetObject.getClass();
+      return new GenericProxyHandler<T>(validator, targetClass, target, recorder);
    }
 
    public Object invoke(final Object proxy, final Method method, final Object[] args)
+   {
+      if (recorder == null ||
+          (Trespasser.PROXY_INST_GETTER.equals(method.getName()) && args == null))
+      {
+         return dispatch(method, args);
+      }
+      // arguments are encoded before the target can change them
+      final InvocationRecorder.Encoder invocation = recorder.begin(method, args);
+      final long start = System.nanoTime();
+      final Object result;
+      try
+      {
+         result = dispatch(method, args);
+      }
+      catch(final RuntimeException ex)
+      {
+         recorder.end(invocation, start, System.nanoTime() - start, true);
+         throw ex;
+      }
+      catch(final Error err)
+      {
+         recorder.end(invocation, start, System.nanoTime() - start, true);
+         throw err;
+      }
+      recorder.end(invocation, start, System.nanoTime() - start, false);
+      return result;
+   }
+
+   private Object dispatch(final Method method, final Object[] args)
    {
       try
       {
          if (Trespasser.PROXY_INST_GETTER.equals(method.getName()) && args == null)
          {
-            return targetObject;
+            return target.get();
+         }
+         if (validator != null)
+         {
+            validator.validate(method);
          }
          if (method.isAnnotationPresent(DefaultInstanceProvider.class))
          {
-            return invokeInstanceProvider(method, args);
+            return invokeInstanceProvider(targetClass, method, args);
          }
          if (method.isAnnotationPresent(ProxyField.class))
          {
@@ -80,10 +123,11 @@ final class GenericProxyHandler<T> implements InvocationHandler
    }
 
    @SuppressWarnings("unchecked")
-   private T invokeInstanceProvider(final Method method, final Object[] args)
+   static <T> T invokeInstanceProvider(final Class<T> targetClass, final Method method,
+                                       final Object[] args)
       throws Exception
    {
-      final Class<?>[] paramTypes = getTargetParamTypes(method, this.getClass().getClassLoader());
+      final Class<?>[] paramTypes = getTargetParamTypes(method, GenericProxyHandler.class.getClassLoader());
       try
       {
          final String methodName = method.getName();
@@ -108,37 +152,50 @@ final class GenericProxyHandler<T> implements InvocationHandler
 
    private Object invokeTargetMethod(final Method method, final Object[] args)
       throws Exception
+   {
+      if (method.isAnnotationPresent(Memoize.class))
+      {
+         // memoized methods are only resolved once per target class, so cache hits never reflect
+         final MemoizedResults results = MemoizedResults.forMethod(method);
+         Method m = results.getTargetMethod(targetClass);
+         if (m == null)
+         {
+            m = resolveTargetMethod(method);
+            results.setTargetMethod(targetClass, m);
+         }
+         return results.get(targetFor(m), m, args);
+      }
+      final Method m = resolveTargetMethod(method);
+      return m.invoke(targetFor(m), args);
+   }
+
+   private Method resolveTargetMethod(final Method method) throws Exception
    {
       final String methodName = method.getName();
       final Class<?>[] paramTypes = getTargetParamTypes(method, this.getClass().getClassLoader());
       final Method m = targetClass.getDeclaredMethod(methodName, paramTypes);
       m.setAccessible(true);
-      return m.invoke(targetObject, args);
+      return m;
+   }
+
+   private T targetFor(final Member member) throws Exception
+   {
+      // static members never need a target instance, so don't force lazy ones to be created
+      return Modifier.isStatic(member.getModifiers()) ? null : target.get();
    }
 
    private Object accessTargetField(final Method method, final Object[] args)
       throws Exception
    {
-      String fieldName = Factory.getProxyFieldName(method);
-      Field field = null;
-      try
-      {
-         field = targetClass.getDeclaredField(fieldName);
-      }
-      catch(final NoSuchFieldException ex)
-      {
-         fieldName = fieldName.substring(0, 1).toUpperCase() +
-                     (fieldName.length() > 1 ? fieldName.substring(1) : "");
-         field = targetClass.getDeclaredField(fieldName);
-      }
-      field.setAccessible(true);
+      final FieldPath path = FieldPath.forMethod(method, targetClass);
+      final Object targetObject = path.isStatic() ? null : target.get();
       if (args == null)
       {
-         return field.get(targetObject);
+         return path.get(targetObject, method.getReturnType());
       }
       else
       {
-         field.set(targetObject, args[0]);
+         path.set(targetObject, args[0]);
          return null;
       }
    }
@@ -162,5 +219,100 @@ final class GenericProxyHandler<T> implements InvocationHandler
       return params;
    }
 
+   /**
+    * Supplies the target instance used by a proxy handler, according with the
+    * {@link DefaultInstanceProvider.Scope} in effect.
+    */
+   static abstract class TargetInstance<T>
+   {
+      abstract T get() throws Exception;
+   }
+
+   /**
+    * Target instance that is known upfront, which is also the case of eagerly provided ones.
+    */
+   static final class FixedTargetInstance<T> extends TargetInstance<T>
+   {
+      private final T instance;
+
+      FixedTargetInstance(final T instance)
+      {
+         this.instance = instance;
+      }
+
+      T get()
+      {
+         return instance;
+      }
+   }
+
+   /**
+    * Target instance obtained from a provider method only once, when first needed.
+    * Safe to be shared by several proxies and threads.
+    */
+   static final class LazyTargetInstance<T> extends TargetInstance<T>
+   {
+      private final Class<T> targetClass;
+      private final Method provider;
+      private final Object[] providerParams;
+      private volatile T instance;
+
+      LazyTargetInstance(final Class<T> targetClass, final Method provider,
+                         final Object[] providerParams)
+      {
+         this.targetClass = targetClass;
+         this.provider = provider;
+         this.providerParams = providerParams;
+      }
+
+      T get() throws Exception
+      {
+         T result = instance;
+         if (result == null)
+         {
+            synchronized (this)
+            {
+               result = instance;
+               if (result == null)
+               {
+                  result = invokeInstanceProvider(targetClass, provider, providerParams);
+                  instance = result;
+               }
+            }
+         }
+         return result;
+      }
+   }
+
+   /**
+    * Target instance obtained from a provider method once per thread, when first needed in that thread.
+    */
+   static final class ThreadTargetInstance<T> extends TargetInstance<T>
+   {
+      private final Class<T> targetClass;
+      private final Method provider;
+      private final Object[] providerParams;
+      private final ThreadLocal<T> instance = new ThreadLocal<T>();
+
+      ThreadTargetInstance(final Class<T> targetClass, final Method provider,
+                           final Object[] providerParams)
+      {
+         this.targetClass = targetClass;
+         this.provider = provider;
+         this.providerParams = providerParams;
+      }
+
+      T get() throws Exception
+      {
+         T result = instance.get();
+         if (result == null)
+         {
+            result = invokeInstanceProvider(targetClass, provider, providerParams);
+            instance.set(result);
+         }
+         return result;
+      }
+   }
+
 }
    
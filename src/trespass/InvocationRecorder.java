@@ -0,0 +1,388 @@
+package trespass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends invocations made through recording proxies to a compact binary log, backed by a
+ * memory-mapped file, so they can later be replayed by an {@link InvocationReplayer}.
+ *
+ * <p>Each invocation is recorded with its method, arguments, start time (relative to the creation of
+ * the recorder) and duration. Arguments of primitive wrapper types and strings are encoded natively,
+ * other {@link Serializable} arguments are encoded via Java serialization and any other argument is
+ * recorded as unavailable, in which case it will be replayed as null.</p>
+ *
+ * <p>One recorder may be shared by several recording proxies and threads. Each thread encodes its
+ * invocations into its own scratch buffer, so the recorder's lock is only held to copy encoded
+ * invocations into the log. Recording never interferes with the outcome of invocations: if an
+ * invocation can't be recorded, for example because the recorder is already closed, it is
+ * just counted as a {@link #getFailureCount() failure}. The recorder must be closed once
+ * recording is done so the log file is trimmed to its actual length.</p>
+ *
+ * @see Factory#createRecordingProxy
+ * @see InvocationReplayer
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+public final class InvocationRecorder implements Closeable
+{
+   static final int MAGIC = 0x54525350; // "TRSP"
+   static final short VERSION = 1;
+
+   static final byte RECORD_END = 0;
+   static final byte RECORD_METHOD = 1;
+   static final byte RECORD_CALL = 2;
+
+   static final byte ARG_NULL = 0;
+   static final byte ARG_BOOLEAN = 1;
+   static final byte ARG_BYTE = 2;
+   static final byte ARG_CHAR = 3;
+   static final byte ARG_SHORT = 4;
+   static final byte ARG_INT = 5;
+   static final byte ARG_LONG = 6;
+   static final byte ARG_FLOAT = 7;
+   static final byte ARG_DOUBLE = 8;
+   static final byte ARG_STRING = 9;
+   static final byte ARG_SERIALIZED = 10;
+   static final byte ARG_UNAVAILABLE = 11;
+
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final int DEFAULT_REGION_SIZE = 8 * 1024 * 1024;
+   // offsets of the fields of a call record that are only filled in once the invocation is done
+   private static final int CALL_START_OFFSET = 5;
+   private static final int CALL_DURATION_OFFSET = 13;
+   private static final int CALL_FAILED_OFFSET = 21;
+
+   private final RandomAccessFile file;
+   private final FileChannel channel;
+   private final int regionSize;
+   private final long startNanos = System.nanoTime();
+   private final ConcurrentMap<Method, Integer> methodIds = new ConcurrentHashMap<Method, Integer>();
+   private final AtomicLong failures = new AtomicLong();
+   private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>()
+   {
+      @Override
+      protected Encoder initialValue()
+      {
+         return new Encoder();
+      }
+   };
+   private final Encoder definitions = new Encoder();
+   private MappedByteBuffer region;
+   private long regionStart;
+
+   /**
+    * Creates a recorder writing to the given file, which will be overwritten if it already exists.
+    * @param log The file where the invocation log will be written
+    * @throws IOException If the file can't be created or mapped
+    */
+   public InvocationRecorder(final File log) throws IOException
+   {
+      this(log, DEFAULT_REGION_SIZE);
+   }
+
+   /**
+    * Creates a recorder writing to the given file, which will be overwritten if it already exists.
+    * @param log The file where the invocation log will be written
+    * @param regionSize Size, in bytes, of each region of the file mapped in memory at a time
+    * @throws IOException If the file can't be created or mapped
+    */
+   public InvocationRecorder(final File log, final int regionSize) throws IOException
+   {
+      if (regionSize < 64)
+      {
+         throw new IllegalArgumentException("Invalid region size: " + regionSize);
+      }
+      this.regionSize = regionSize;
+      this.file = new RandomAccessFile(log, "rw");
+      this.file.setLength(0);
+      this.channel = file.getChannel();
+      this.region = channel.map(FileChannel.MapMode.READ_WRITE, 0, regionSize);
+      this.region.putInt(MAGIC);
+      this.region.putShort(VERSION);
+   }
+
+   /**
+    * @return How many bytes have been written to the log so far
+    */
+   public synchronized long size()
+   {
+      return region != null ? regionStart + region.position() : regionStart;
+   }
+
+   /**
+    * @return How many invocations couldn't be recorded
+    */
+   public long getFailureCount()
+   {
+      return failures.get();
+   }
+
+   /**
+    * Encodes an invocation that is about to be made, so that its arguments are captured as they were
+    * passed by the caller, before the target gets a chance to change them. The encoded invocation is
+    * only appended to the log by {@link #end}. Never throws, failures to record are only counted.
+    * @return The pending invocation to be given to {@link #end}, or null if it can't be recorded
+    */
+   Encoder begin(final Method method, final Object[] args)
+   {
+      try
+      {
+         Integer id = methodIds.get(method);
+         if (id == null)
+         {
+            id = defineMethod(method);
+         }
+         Encoder encoder = encoders.get();
+         if (encoder.pending)
+         {
+            // a recorded invocation made by the target of another one on the same thread
+            encoder = new Encoder();
+         }
+         encoder.clear();
+         encoder.ensure(24);
+         encoder.buffer.put(RECORD_CALL);
+         encoder.buffer.putInt(id.intValue());
+         // start offset, duration and failure flag are only known once the invocation is done
+         encoder.buffer.putLong(0);
+         encoder.buffer.putLong(0);
+         encoder.buffer.put((byte)0);
+         final int argCount = args != null ? args.length : 0;
+         encoder.buffer.putShort((short)argCount);
+         for (int i = 0; i < argCount; i++)
+         {
+            encoder.encodeArgument(args[i]);
+         }
+         encoder.pending = true;
+         return encoder;
+      }
+      catch(final Exception ex)
+      {
+         failures.incrementAndGet();
+         return null;
+      }
+   }
+
+   /**
+    * Completes an invocation previously encoded by {@link #begin} and appends it to the log.
+    * Never throws, failures to record are only counted.
+    */
+   void end(final Encoder invocation, final long invocationNanos, final long durationNanos,
+            final boolean failed)
+   {
+      if (invocation == null)
+      {
+         return;
+      }
+      try
+      {
+         invocation.buffer.putLong(CALL_START_OFFSET, invocationNanos - startNanos);
+         invocation.buffer.putLong(CALL_DURATION_OFFSET, durationNanos);
+         invocation.buffer.put(CALL_FAILED_OFFSET, failed ? (byte)1 : (byte)0);
+         append(invocation.flip());
+      }
+      catch(final Exception ex)
+      {
+         failures.incrementAndGet();
+      }
+      finally
+      {
+         invocation.pending = false;
+      }
+   }
+
+   /**
+    * Flushes and trims the log file to its actual length. Any invocation recorded
+    * after this method is called will be counted as a failure.
+    */
+   public synchronized void close() throws IOException
+   {
+      if (region == null)
+      {
+         return;
+      }
+      final long length = regionStart + region.position();
+      region.force();
+      region = null;
+      try
+      {
+         channel.truncate(length);
+      }
+      finally
+      {
+         file.close();
+      }
+   }
+
+   /**
+    * Writes the definition of a method to the log, before publishing its id, so that the
+    * definition always precedes any invocation referencing it.
+    */
+   private synchronized Integer defineMethod(final Method method) throws IOException
+   {
+      Integer id = methodIds.get(method);
+      if (id == null)
+      {
+         id = Integer.valueOf(methodIds.size());
+         final Class<?>[] params = method.getParameterTypes();
+         final Encoder encoder = definitions;
+         encoder.clear();
+         encoder.ensure(5);
+         encoder.buffer.put(RECORD_METHOD);
+         encoder.buffer.putInt(id.intValue());
+         encoder.encodeString(method.getDeclaringClass().getName());
+         encoder.encodeString(method.getName());
+         encoder.ensure(2);
+         encoder.buffer.putShort((short)params.length);
+         for (Class<?> param : params)
+         {
+            encoder.encodeString(param.getName());
+         }
+         append(encoder.flip());
+         methodIds.put(method, id);
+      }
+      return id;
+   }
+
+   private synchronized void append(final ByteBuffer record) throws IOException
+   {
+      if (region == null)
+      {
+         throw new IllegalStateException("Recorder is already closed");
+      }
+      if (region.remaining() < record.remaining())
+      {
+         regionStart += region.position();
+         region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart,
+                              Math.max(regionSize, record.remaining()));
+      }
+      region.put(record);
+   }
+
+   /**
+    * Per-thread scratch buffer in which records are encoded before being appended to the log.
+    */
+   static final class Encoder
+   {
+      private ByteBuffer buffer = ByteBuffer.allocate(256);
+      private boolean pending;
+
+      private void clear()
+      {
+         buffer.clear();
+      }
+
+      private ByteBuffer flip()
+      {
+         buffer.flip();
+         return buffer;
+      }
+
+      private void encodeArgument(final Object arg)
+      {
+         ensure(9);
+         if (arg == null)
+         {
+            buffer.put(ARG_NULL);
+         }
+         else if (arg instanceof Integer)
+         {
+            buffer.put(ARG_INT).putInt(((Integer)arg).intValue());
+         }
+         else if (arg instanceof Long)
+         {
+            buffer.put(ARG_LONG).putLong(((Long)arg).longValue());
+         }
+         else if (arg instanceof String)
+         {
+            buffer.put(ARG_STRING);
+            encodeString((String)arg);
+         }
+         else if (arg instanceof Boolean)
+         {
+            buffer.put(ARG_BOOLEAN).put(((Boolean)arg).booleanValue() ? (byte)1 : (byte)0);
+         }
+         else if (arg instanceof Double)
+         {
+            buffer.put(ARG_DOUBLE).putDouble(((Double)arg).doubleValue());
+         }
+         else if (arg instanceof Float)
+         {
+            buffer.put(ARG_FLOAT).putFloat(((Float)arg).floatValue());
+         }
+         else if (arg instanceof Byte)
+         {
+            buffer.put(ARG_BYTE).put(((Byte)arg).byteValue());
+         }
+         else if (arg instanceof Short)
+         {
+            buffer.put(ARG_SHORT).putShort(((Short)arg).shortValue());
+         }
+         else if (arg instanceof Character)
+         {
+            buffer.put(ARG_CHAR).putChar(((Character)arg).charValue());
+         }
+         else if (arg instanceof Serializable)
+         {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try
+            {
+               final ObjectOutputStream out = new ObjectOutputStream(bytes);
+               out.writeObject(arg);
+               out.close();
+               encodeBytes(ARG_SERIALIZED, bytes.toByteArray());
+            }
+            catch(final IOException ex)
+            {
+               // the object graph isn't fully serializable after all
+               buffer.put(ARG_UNAVAILABLE);
+            }
+         }
+         else
+         {
+            buffer.put(ARG_UNAVAILABLE);
+         }
+      }
+
+      private void encodeString(final String value)
+      {
+         final byte[] bytes = value.getBytes(UTF8);
+         ensure(4 + bytes.length);
+         buffer.putInt(bytes.length).put(bytes);
+      }
+
+      private void encodeBytes(final byte tag, final byte[] bytes)
+      {
+         buffer.put(tag);
+         ensure(4 + bytes.length);
+         buffer.putInt(bytes.length).put(bytes);
+      }
+
+      private void ensure(final int bytes)
+      {
+         if (buffer.remaining() < bytes)
+         {
+            final ByteBuffer larger = ByteBuffer.allocate(
+               Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+         }
+      }
+   }
+}
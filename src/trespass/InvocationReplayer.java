@@ -0,0 +1,297 @@
+package trespass;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays invocations previously recorded by an {@link InvocationRecorder} against a proxy,
+ * which will typically encapsulate a fresh target instance.
+ *
+ * <p>The whole log is decoded when the replayer is created so that decoding doesn't interfere with
+ * the timing of replayed invocations. Invocations are replayed sequentially, in the order they were
+ * recorded, by the thread calling {@link #replay(Trespasser, double)}.</p>
+ *
+ * @see InvocationRecorder
+ * @see ReplayReport
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+public final class InvocationReplayer
+{
+   private final List<MethodSignature> methods = new ArrayList<MethodSignature>();
+   private final List<Invocation> invocations = new ArrayList<Invocation>();
+
+   /**
+    * Decodes the given invocation log.
+    * @param log A file written by an {@link InvocationRecorder}
+    * @throws IOException If the file can't be read or is not a valid invocation log
+    * @throws ClassNotFoundException If the class of a serialized argument can't be found
+    */
+   public InvocationReplayer(final File log) throws IOException, ClassNotFoundException
+   {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+      try
+      {
+         if (in.readInt() != InvocationRecorder.MAGIC || in.readShort() != InvocationRecorder.VERSION)
+         {
+            throw new IOException(log + " is not a valid invocation log");
+         }
+         decode(in);
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * @return The number of invocations decoded from the log
+    */
+   public int getInvocationCount()
+   {
+      return invocations.size();
+   }
+
+   /**
+    * <p>Replays all recorded invocations against the given proxy.</p>
+    *
+    * <p>Recorded methods are matched by name and parameter types against the methods of the
+    * interfaces implemented by the proxy. Invocations failing with an exception are counted as
+    * failures and don't interrupt the replay.</p>
+    *
+    * @param proxy The proxy that will receive the replayed invocations
+    * @param speed Rate at which invocations are replayed relative to the recorded one. 1 keeps the
+    * original rate, 2 replays twice as fast and so on. Zero or less replays as fast as possible.
+    * @return A report containing the latency of each replayed invocation, measured from when it was
+    * due according to the recorded schedule when paced, and its service time
+    * @throws IllegalArgumentException If a recorded method can't be matched by the given proxy
+    */
+   public ReplayReport replay(final Trespasser<?> proxy, final double speed)
+   {
+      final Method[] resolved = new Method[methods.size()];
+      for (int i = 0; i < resolved.length; i++)
+      {
+         resolved[i] = methods.get(i).resolve(proxy.getClass());
+      }
+      final long[] latencies = new long[invocations.size()];
+      final long[] serviceTimes = new long[latencies.length];
+      final long firstOffset = invocations.isEmpty() ? 0 : invocations.get(0).offsetNanos;
+      int failures = 0;
+      final long start = System.nanoTime();
+      for (int i = 0; i < latencies.length; i++)
+      {
+         final Invocation invocation = invocations.get(i);
+         long due = 0;
+         if (speed > 0)
+         {
+            due = start + (long)((invocation.offsetNanos - firstOffset) / speed);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0)
+            {
+               LockSupport.parkNanos(wait);
+            }
+         }
+         final long before = System.nanoTime();
+         try
+         {
+            resolved[invocation.methodId].invoke(proxy, invocation.args);
+         }
+         catch(final InvocationTargetException ex)
+         {
+            failures++;
+         }
+         catch(final IllegalAccessException ex)
+         {
+            throw new RuntimeException(ex);
+         }
+         final long end = System.nanoTime();
+         serviceTimes[i] = end - before;
+         // when paced, measure from when the invocation was due so that falling behind the
+         // schedule shows up as latency instead of being hidden (coordinated omission)
+         latencies[i] = end - (speed > 0 ? due : before);
+      }
+      return new ReplayReport(latencies, serviceTimes, failures, System.nanoTime() - start);
+   }
+
+   private void decode(final DataInputStream in) throws IOException, ClassNotFoundException
+   {
+      while (true)
+      {
+         final int type = in.read();
+         if (type == -1 || type == InvocationRecorder.RECORD_END)
+         {
+            // either the log was properly closed or the rest of the last mapped region is empty
+            return;
+         }
+         if (type == InvocationRecorder.RECORD_METHOD)
+         {
+            final int id = in.readInt();
+            final String declaringClass = readString(in);
+            final String name = readString(in);
+            final String[] params = new String[in.readShort()];
+            for (int i = 0; i < params.length; i++)
+            {
+               params[i] = readString(in);
+            }
+            if (id != methods.size())
+            {
+               throw new IOException("Unexpected method id " + id);
+            }
+            methods.add(new MethodSignature(declaringClass, name, params));
+         }
+         else if (type == InvocationRecorder.RECORD_CALL)
+         {
+            final int id = in.readInt();
+            final long offset = in.readLong();
+            in.readLong(); // recorded duration
+            in.readByte(); // recorded failure flag
+            final Object[] args = new Object[in.readShort()];
+            for (int i = 0; i < args.length; i++)
+            {
+               args[i] = readArgument(in);
+            }
+            if (id < 0 || id >= methods.size())
+            {
+               throw new IOException("Unknown method id " + id);
+            }
+            invocations.add(new Invocation(id, offset, args.length > 0 ? args : null));
+         }
+         else
+         {
+            throw new IOException("Unknown record type " + type);
+         }
+      }
+   }
+
+   private static Object readArgument(final DataInputStream in) throws IOException, ClassNotFoundException
+   {
+      final byte tag = in.readByte();
+      switch (tag)
+      {
+         case InvocationRecorder.ARG_NULL:
+         case InvocationRecorder.ARG_UNAVAILABLE:
+            return null;
+         case InvocationRecorder.ARG_BOOLEAN:
+            return Boolean.valueOf(in.readByte() != 0);
+         case InvocationRecorder.ARG_BYTE:
+            return Byte.valueOf(in.readByte());
+         case InvocationRecorder.ARG_CHAR:
+            return Character.valueOf(in.readChar());
+         case InvocationRecorder.ARG_SHORT:
+            return Short.valueOf(in.readShort());
+         case InvocationRecorder.ARG_INT:
+            return Integer.valueOf(in.readInt());
+         case InvocationRecorder.ARG_LONG:
+            return Long.valueOf(in.readLong());
+         case InvocationRecorder.ARG_FLOAT:
+            return Float.valueOf(in.readFloat());
+         case InvocationRecorder.ARG_DOUBLE:
+            return Double.valueOf(in.readDouble());
+         case InvocationRecorder.ARG_STRING:
+            return readString(in);
+         case InvocationRecorder.ARG_SERIALIZED:
+            final ObjectInputStream objectIn = new ObjectInputStream(
+               new ByteArrayInputStream(readBytes(in)));
+            try
+            {
+               return objectIn.readObject();
+            }
+            finally
+            {
+               objectIn.close();
+            }
+         default:
+            throw new IOException("Unknown argument tag " + tag);
+      }
+   }
+
+   private static String readString(final DataInputStream in) throws IOException
+   {
+      return new String(readBytes(in), InvocationRecorder.UTF8);
+   }
+
+   private static byte[] readBytes(final DataInputStream in) throws IOException
+   {
+      final int length = in.readInt();
+      if (length < 0)
+      {
+         throw new EOFException("Invalid length " + length);
+      }
+      final byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return bytes;
+   }
+
+   private static final class MethodSignature
+   {
+      private final String declaringClass;
+      private final String name;
+      private final String[] params;
+
+      private MethodSignature(final String declaringClass, final String name, final String[] params)
+      {
+         this.declaringClass = declaringClass;
+         this.name = name;
+         this.params = params;
+      }
+
+      private Method resolve(final Class<?> proxyClass)
+      {
+         for (Class<?> ifc : proxyClass.getInterfaces())
+         {
+            for (Method m : ifc.getMethods())
+            {
+               if (m.getName().equals(name) && Arrays.equals(params, typeNames(m.getParameterTypes())))
+               {
+                  return m;
+               }
+            }
+         }
+         final String msg = String.format(
+            "Recorded method %s.%s(%s) doesn't match any method of %s",
+            declaringClass,
+            name,
+            Arrays.toString(params).replaceAll("[\\Q[\\E\\Q]\\E]", ""),
+            proxyClass.getName()
+         );
+         throw new IllegalArgumentException(msg);
+      }
+
+      private static String[] typeNames(final Class<?>[] types)
+      {
+         final String[] names = new String[types.length];
+         for (int i = 0; i < types.length; i++)
+         {
+            names[i] = types[i].getName();
+         }
+         return names;
+      }
+   }
+
+   private static final class Invocation
+   {
+      private final int methodId;
+      private final long offsetNanos;
+      private final Object[] args;
+
+      private Invocation(final int methodId, final long offsetNanos, final Object[] args)
+      {
+         this.methodId = methodId;
+         this.offsetNanos = offsetNanos;
+         this.args = args;
+      }
+   }
+}
@@ -0,0 +1,74 @@
+package trespass;
+
+/**
+ * Snapshot of the statistics of the result cache of a method annotated with
+ * {@link trespass.annotation.Memoize}.
+ *
+ * @see Factory#getMemoizeStatistics
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+public final class MemoizeStatistics
+{
+   private final long hitCount;
+   private final long missCount;
+   private final long evictionCount;
+   private final int size;
+
+   MemoizeStatistics(final long hitCount, final long missCount, final long evictionCount, final int size)
+   {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.evictionCount = evictionCount;
+      this.size = size;
+   }
+
+   /**
+    * @return How many calls were answered with a cached result
+    */
+   public long getHitCount()
+   {
+      return hitCount;
+   }
+
+   /**
+    * @return How many calls had to invoke the target method
+    */
+   public long getMissCount()
+   {
+      return missCount;
+   }
+
+   /**
+    * @return How many cached results were evicted, either because the cache was full or because they expired
+    */
+   public long getEvictionCount()
+   {
+      return evictionCount;
+   }
+
+   /**
+    * @return How many results are currently cached
+    */
+   public int getSize()
+   {
+      return size;
+   }
+
+   /**
+    * @return The ratio of calls answered with a cached result, or 0 if there were no calls
+    */
+   public double getHitRate()
+   {
+      final long total = hitCount + missCount;
+      return total == 0 ? 0 : (double)hitCount / total;
+   }
+
+   @Override
+   public String toString()
+   {
+      return String.format("hits=%d misses=%d evictions=%d size=%d hitRate=%.3f",
+                           hitCount, missCount, evictionCount, size, getHitRate());
+   }
+}
@@ -0,0 +1,355 @@
+package trespass;
+
+import trespass.annotation.Memoize;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of results of a proxy method annotated with {@link Memoize}.
+ *
+ * <p>Entries are spread across segments, each one a least recently used map guarded by its
+ * own lock, so that concurrent callers rarely contend with each other.</p>
+ *
+ * <p>Targets are only weakly referenced by cache keys, the same way {@link WeakIdentityProxyCache}
+ * does, so that memoized results never keep their targets alive. Entries whose targets were
+ * collected are purged whenever a new result is cached.</p>
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+final class MemoizedResults
+{
+   private static final ConcurrentMap<Method, MemoizedResults> caches =
+      new ConcurrentHashMap<Method, MemoizedResults>();
+   private static final Object NULL_RESULT = new Object();
+   // stands for the missing target of static methods, which would otherwise look like a collected one
+   private static final Object STATIC_TARGET = new Object();
+   private static final int MAX_SEGMENTS = 16;
+
+   private final Segment[] segments;
+   private final long expireAfterWriteNanos;
+   private final ReferenceQueue<Object> collectedTargets = new ReferenceQueue<Object>();
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+   private volatile ResolvedMethod targetMethod;
+
+   private MemoizedResults(final Memoize config)
+   {
+      final int maximumSize = config.maximumSize();
+      final int segmentCount = maximumSize >= MAX_SEGMENTS * MAX_SEGMENTS ? MAX_SEGMENTS : 1;
+      this.segments = new Segment[segmentCount];
+      for (int i = 0; i < segmentCount; i++)
+      {
+         segments[i] = new Segment((maximumSize + segmentCount - 1) / segmentCount);
+      }
+      this.expireAfterWriteNanos = config.expireAfterWrite() > 0 ?
+                                   config.timeUnit().toNanos(config.expireAfterWrite()) : 0;
+   }
+
+   static MemoizedResults forMethod(final Method proxyMethod)
+   {
+      MemoizedResults results = caches.get(proxyMethod);
+      if (results == null)
+      {
+         final MemoizedResults newResults = new MemoizedResults(proxyMethod.getAnnotation(Memoize.class));
+         results = caches.putIfAbsent(proxyMethod, newResults);
+         if (results == null)
+         {
+            results = newResults;
+         }
+      }
+      return results;
+   }
+
+   /**
+    * @return The target method previously resolved for the given target class, or null
+    */
+   Method getTargetMethod(final Class<?> targetClass)
+   {
+      final ResolvedMethod resolved = targetMethod;
+      return resolved != null && resolved.targetClass == targetClass ? resolved.method : null;
+   }
+
+   void setTargetMethod(final Class<?> targetClass, final Method method)
+   {
+      targetMethod = new ResolvedMethod(targetClass, method);
+   }
+
+   /**
+    * Returns the cached result of invoking a method on the given target with the given arguments,
+    * first invoking it if necessary.
+    */
+   Object get(final Object target, final Method targetMethod, final Object[] args) throws Exception
+   {
+      final Object keyTarget = target != null ? target : STATIC_TARGET;
+      final Probe probe = new Probe(keyTarget, args);
+      final Segment segment = segmentFor(probe.hash);
+      Object result = segment.get(probe);
+      if (result != null)
+      {
+         hits.incrementAndGet();
+         return result == NULL_RESULT ? null : result;
+      }
+      misses.incrementAndGet();
+      // copied before the invocation, so the stored key matches the arguments as they were passed
+      final Object[] keyArgs = copyArrays(args);
+      result = targetMethod.invoke(target, args);
+      purgeCollectedTargets();
+      segment.put(new CallKey(keyTarget, keyArgs, probe.hash, collectedTargets),
+                  result != null ? result : NULL_RESULT);
+      return result;
+   }
+
+   MemoizeStatistics getStatistics()
+   {
+      purgeCollectedTargets();
+      int size = 0;
+      for (Segment segment : segments)
+      {
+         size += segment.size();
+      }
+      return new MemoizeStatistics(hits.get(), misses.get(), evictions.get(), size);
+   }
+
+   private Segment segmentFor(final int hash)
+   {
+      return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+   }
+
+   private void purgeCollectedTargets()
+   {
+      Reference<?> ref;
+      while ((ref = collectedTargets.poll()) != null)
+      {
+         final CallKey key = (CallKey)ref;
+         segmentFor(key.hash).remove(key);
+      }
+   }
+
+   /**
+    * Deep-copies array arguments, so that callers reusing them, such as a byte[] buffer,
+    * can't change the contents of stored keys. Returns the given arguments if none is an array.
+    */
+   private static Object[] copyArrays(final Object[] args)
+   {
+      if (args == null)
+      {
+         return null;
+      }
+      Object[] copy = null;
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i] != null && args[i].getClass().isArray())
+         {
+            if (copy == null)
+            {
+               copy = args.clone();
+            }
+            copy[i] = copyArray(args[i]);
+         }
+      }
+      return copy != null ? copy : args;
+   }
+
+   private static Object copyArray(final Object array)
+   {
+      final int length = Array.getLength(array);
+      final Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+      System.arraycopy(array, 0, copy, 0, length);
+      if (copy instanceof Object[])
+      {
+         final Object[] elements = (Object[])copy;
+         for (int i = 0; i < length; i++)
+         {
+            if (elements[i] != null && elements[i].getClass().isArray())
+            {
+               elements[i] = copyArray(elements[i]);
+            }
+         }
+      }
+      return copy;
+   }
+
+   private static int hash(final Object target, final Object[] args)
+   {
+      return 31 * System.identityHashCode(target) + Arrays.deepHashCode(args);
+   }
+
+   private final class Segment
+   {
+      private final Map<Object, Entry> entries;
+
+      private Segment(final int capacity)
+      {
+         this.entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true)
+         {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Object, Entry> eldest)
+            {
+               // the least recently used entry is also dropped as soon as it expires
+               if (size() > capacity || isExpired(eldest.getValue()))
+               {
+                  evictions.incrementAndGet();
+                  return true;
+               }
+               return false;
+            }
+         };
+      }
+
+      private synchronized Object get(final Probe key)
+      {
+         final Entry entry = entries.get(key);
+         if (entry == null)
+         {
+            return null;
+         }
+         if (isExpired(entry))
+         {
+            entries.remove(key);
+            evictions.incrementAndGet();
+            return null;
+         }
+         return entry.value;
+      }
+
+      private synchronized void put(final CallKey key, final Object value)
+      {
+         entries.put(key, new Entry(value, expireAfterWriteNanos > 0 ? System.nanoTime() : 0));
+      }
+
+      private synchronized void remove(final CallKey key)
+      {
+         if (entries.remove(key) != null)
+         {
+            evictions.incrementAndGet();
+         }
+      }
+
+      private synchronized int size()
+      {
+         return entries.size();
+      }
+   }
+
+   private boolean isExpired(final Entry entry)
+   {
+      return expireAfterWriteNanos > 0 && System.nanoTime() - entry.writeNanos >= expireAfterWriteNanos;
+   }
+
+   private static final class Entry
+   {
+      private final Object value;
+      private final long writeNanos;
+
+      private Entry(final Object value, final long writeNanos)
+      {
+         this.value = value;
+         this.writeNanos = writeNanos;
+      }
+   }
+
+   private static final class ResolvedMethod
+   {
+      private final Class<?> targetClass;
+      private final Method method;
+
+      private ResolvedMethod(final Class<?> targetClass, final Method method)
+      {
+         this.targetClass = targetClass;
+         this.method = method;
+      }
+   }
+
+   /**
+    * Key of a cached result, which only weakly references its target.
+    * Once the target is collected, the key is only equal to itself.
+    */
+   private static final class CallKey extends WeakReference<Object>
+   {
+      private final Object[] args;
+      private final int hash;
+
+      private CallKey(final Object target, final Object[] args, final int hash,
+                      final ReferenceQueue<Object> queue)
+      {
+         super(target, queue);
+         this.args = args;
+         this.hash = hash;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(final Object obj)
+      {
+         if (this == obj)
+         {
+            return true;
+         }
+         if (obj instanceof Probe)
+         {
+            return obj.equals(this);
+         }
+         if (!(obj instanceof CallKey))
+         {
+            return false;
+         }
+         final CallKey other = (CallKey)obj;
+         final Object target = get();
+         return target != null && hash == other.hash && target == other.get() &&
+                Arrays.deepEquals(args, other.args);
+      }
+   }
+
+   /**
+    * Short-lived key used to look results up, strongly referencing its target.
+    */
+   private static final class Probe
+   {
+      private final Object target;
+      private final Object[] args;
+      private final int hash;
+
+      private Probe(final Object target, final Object[] args)
+      {
+         this.target = target;
+         this.args = args;
+         this.hash = hash(target, args);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(final Object obj)
+      {
+         if (!(obj instanceof CallKey))
+         {
+            return false;
+         }
+         final CallKey other = (CallKey)obj;
+         return hash == other.hash && target == other.get() && Arrays.deepEquals(args, other.args);
+      }
+   }
+}
@@ -0,0 +1,107 @@
+package trespass;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency statistics of invocations replayed by an {@link InvocationReplayer}.
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+public final class ReplayReport
+{
+   private final long[] sortedLatencies;
+   private final long[] sortedServiceTimes;
+   private final int failures;
+   private final long elapsedNanos;
+
+   ReplayReport(final long[] latencies, final long[] serviceTimes, final int failures,
+                final long elapsedNanos)
+   {
+      this.sortedLatencies = latencies;
+      Arrays.sort(this.sortedLatencies);
+      this.sortedServiceTimes = serviceTimes;
+      Arrays.sort(this.sortedServiceTimes);
+      this.failures = failures;
+      this.elapsedNanos = elapsedNanos;
+   }
+
+   /**
+    * @return How many invocations were replayed
+    */
+   public int getInvocationCount()
+   {
+      return sortedLatencies.length;
+   }
+
+   /**
+    * @return How many replayed invocations failed with an exception
+    */
+   public int getFailureCount()
+   {
+      return failures;
+   }
+
+   /**
+    * @return Total duration of the replay, in nanoseconds
+    */
+   public long getElapsedNanos()
+   {
+      return elapsedNanos;
+   }
+
+   /**
+    * Latencies of paced replays are measured from when each invocation was due according to the
+    * recorded schedule, so they include any delay caused by the replay falling behind it.
+    * Unpaced replays measure them from when each invocation actually started.
+    * @param percentile A percentile between 0 and 100, such as 50, 99 or 99.9
+    * @return The latency, in nanoseconds, at the given percentile or 0 if nothing was replayed
+    */
+   public long getLatencyPercentile(final double percentile)
+   {
+      return percentile(sortedLatencies, percentile);
+   }
+
+   /**
+    * Service times are always measured from when each invocation actually started.
+    * @param percentile A percentile between 0 and 100, such as 50, 99 or 99.9
+    * @return The service time, in nanoseconds, at the given percentile or 0 if nothing was replayed
+    */
+   public long getServiceTimePercentile(final double percentile)
+   {
+      return percentile(sortedServiceTimes, percentile);
+   }
+
+   private static long percentile(final long[] sorted, final double percentile)
+   {
+      if (percentile < 0 || percentile > 100)
+      {
+         throw new IllegalArgumentException("Invalid percentile: " + percentile);
+      }
+      if (sorted.length == 0)
+      {
+         return 0;
+      }
+      final int rank = (int)Math.ceil(percentile / 100 * sorted.length);
+      return sorted[Math.max(rank - 1, 0)];
+   }
+
+   @Override
+   public String toString()
+   {
+      return String.format(
+         "%d invocations (%d failed) in %d ms, latency in us: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f, service time in us: p50=%.1f p99=%.1f",
+         getInvocationCount(),
+         failures,
+         TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+         getLatencyPercentile(50) / 1000d,
+         getLatencyPercentile(90) / 1000d,
+         getLatencyPercentile(99) / 1000d,
+         getLatencyPercentile(99.9) / 1000d,
+         getLatencyPercentile(100) / 1000d,
+         getServiceTimePercentile(50) / 1000d,
+         getServiceTimePercentile(99) / 1000d
+      );
+   }
+}
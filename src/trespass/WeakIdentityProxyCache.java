@@ -0,0 +1,160 @@
+package trespass;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A minimal cache of proxies keyed by the identity of their target objects.
+ *
+ * <p>Both keys and values are weakly referenced. Keys must be weak so that a cached proxy never
+ * keeps its target alive, and values must be weak as well because every proxy strongly references
+ * its own target. The trade-off is that a proxy is only reused for as long as it is reachable from
+ * somewhere else: callers that fetch a proxy, use it and drop it will get a new one after the
+ * next garbage collection.</p>
+ *
+ * <p>Lookups neither allocate nor lock. They probe a hash table by {@link System#identityHashCode}
+ * and compare live referents. Only insertions, and purging entries whose targets were collected,
+ * take the cache's lock.</p>
+ *
+ * @param <T> The target type of the cached proxies
+ * @param <P> Type of the cached proxies
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+final class WeakIdentityProxyCache<T, P>
+{
+   private static final int INITIAL_CAPACITY = 16;
+
+   private final ReferenceQueue<Object> collectedTargets = new ReferenceQueue<Object>();
+   private volatile AtomicReferenceArray<Entry<P>> table = new AtomicReferenceArray<Entry<P>>(INITIAL_CAPACITY);
+   private int size;
+
+   /**
+    * @return The live proxy cached for the given target, or null
+    */
+   P get(final T target)
+   {
+      final int hash = System.identityHashCode(target);
+      final AtomicReferenceArray<Entry<P>> tab = table;
+      for (Entry<P> e = tab.get(hash & (tab.length() - 1)); e != null; e = e.next)
+      {
+         if (e.hash == hash && e.get() == target)
+         {
+            return e.proxy.get();
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Caches the given proxy for the given target, unless a live proxy is already cached for it.
+    * @return The proxy cached for the given target once this method returns
+    */
+   synchronized P putIfAbsent(final T target, final P proxy)
+   {
+      expungeCollectedTargets();
+      final int hash = System.identityHashCode(target);
+      AtomicReferenceArray<Entry<P>> tab = table;
+      int index = hash & (tab.length() - 1);
+      for (Entry<P> e = tab.get(index); e != null; e = e.next)
+      {
+         if (e.hash == hash && e.get() == target)
+         {
+            final P existing = e.proxy.get();
+            if (existing != null)
+            {
+               return existing;
+            }
+            // the previous proxy was collected, drop its entry and cache the new one
+            remove(tab, e);
+            break;
+         }
+      }
+      if (size >= tab.length() - (tab.length() >>> 2))
+      {
+         tab = resize(tab);
+         index = hash & (tab.length() - 1);
+      }
+      tab.set(index, new Entry<P>(target, hash, proxy, tab.get(index), collectedTargets));
+      size++;
+      return proxy;
+   }
+
+   private void expungeCollectedTargets()
+   {
+      Reference<?> ref;
+      while ((ref = collectedTargets.poll()) != null)
+      {
+         remove(table, (Entry<?>)ref);
+      }
+   }
+
+   private void remove(final AtomicReferenceArray<Entry<P>> tab, final Entry<?> entry)
+   {
+      final int index = entry.hash & (tab.length() - 1);
+      Entry<P> prev = null;
+      for (Entry<P> e = tab.get(index); e != null; e = e.next)
+      {
+         if (e == entry)
+         {
+            if (prev == null)
+            {
+               tab.set(index, e.next);
+            }
+            else
+            {
+               prev.next = e.next;
+            }
+            size--;
+            return;
+         }
+         prev = e;
+      }
+   }
+
+   /**
+    * Copies live entries into a table twice as large. Entries are copied rather than relinked so that
+    * concurrent lookups still traversing the old table always see consistent chains.
+    */
+   private AtomicReferenceArray<Entry<P>> resize(final AtomicReferenceArray<Entry<P>> tab)
+   {
+      final AtomicReferenceArray<Entry<P>> larger = new AtomicReferenceArray<Entry<P>>(tab.length() * 2);
+      int count = 0;
+      for (int i = 0; i < tab.length(); i++)
+      {
+         for (Entry<P> e = tab.get(i); e != null; e = e.next)
+         {
+            final Object target = e.get();
+            final P proxy = e.proxy.get();
+            if (target != null && proxy != null)
+            {
+               final int index = e.hash & (larger.length() - 1);
+               larger.set(index, new Entry<P>(target, e.hash, proxy, larger.get(index), collectedTargets));
+               count++;
+            }
+         }
+      }
+      size = count;
+      table = larger;
+      return larger;
+   }
+
+   private static final class Entry<P> extends WeakReference<Object>
+   {
+      private final int hash;
+      private final WeakReference<P> proxy;
+      private volatile Entry<P> next;
+
+      private Entry(final Object target, final int hash, final P proxy, final Entry<P> next,
+                    final ReferenceQueue<Object> queue)
+      {
+         super(target, queue);
+         this.hash = hash;
+         this.proxy = new WeakReference<P>(proxy);
+         this.next = next;
+      }
+   }
+}
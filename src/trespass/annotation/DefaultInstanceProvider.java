@@ -19,6 +19,10 @@ import java.lang.annotation.Target;
  * interface. If more than one is found, only the 1st one found will be used but
  * there will be no guarantees on the order in which method are processed.</p>
  *
+ * <p>By default, the marked method is invoked eagerly every time a proxy is created.
+ * The {@link #scope()} attribute can be used to change when, and how often, target
+ * instances are obtained from it.</p>
+ *
  * @see trespass.Factory#createProxy
  *
  * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
@@ -28,4 +32,39 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface DefaultInstanceProvider
 {
+   /**
+    * Defines when and how often the annotated method will be invoked to obtain
+    * the target instance encapsulated by proxies. Defaults to {@link Scope#EAGER}.
+    */
+   Scope scope() default Scope.EAGER;
+
+   /**
+    * Possible scopes of a target instance obtained from a {@link DefaultInstanceProvider}.
+    */
+   enum Scope
+   {
+      /**
+       * A new target instance is obtained as soon as each proxy is created.
+       */
+      EAGER,
+      /**
+       * A new target instance is obtained for each proxy, but only when it is first needed
+       * by a call to a non-static member of the target class.
+       */
+      LAZY,
+      /**
+       * One single target instance is obtained, when first needed, and then shared
+       * by all proxies created for the same proxy interface. Arguments given to any
+       * subsequent proxy creation are ignored.
+       */
+      SHARED,
+      /**
+       * One target instance is obtained, when first needed, for each thread and then
+       * shared by all proxies created for the same proxy interface that are used
+       * in that thread. Useful when the target class is not thread-safe. Every thread's
+       * instance is obtained with the arguments given to the first proxy creation, so
+       * arguments given to any subsequent proxy creation are ignored.
+       */
+      THREAD
+   }
 }
@@ -0,0 +1,44 @@
+package trespass.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Annotate methods in an interface extending {@link trespass.Trespasser} that map pure target
+ * methods, whose results depend only on their target instance and arguments, in order to cache
+ * their results instead of invoking the target method on every call.</p>
+ *
+ * <p>Results are cached per target instance (compared by identity) and argument tuple (compared
+ * with {@link java.util.Arrays#deepEquals}) in a concurrent cache bounded to {@link #maximumSize()}
+ * entries, evicting the least recently used ones first. Target instances are only weakly referenced
+ * by the cache, so results never keep their targets alive, unless the results or the arguments
+ * themselves reference the target. Invocations ending with an exception are never cached. Hit and miss counts can be obtained via
+ * {@link trespass.Factory#getMemoizeStatistics}.</p>
+ *
+ * <p>This annotation can't be combined with {@link ProxyField} or {@link DefaultInstanceProvider}
+ * and can't be used on methods returning void.</p>
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Memoize
+{
+   /**
+    * Approximate maximum number of results kept in the cache of the annotated method
+    */
+   int maximumSize() default 1000;
+   /**
+    * How long a cached result remains valid after it was computed, in {@link #timeUnit()}.
+    * Zero or less means cached results never expire and will only be evicted when the cache is full.
+    */
+   long expireAfterWrite() default 0;
+   /**
+    * Time unit of {@link #expireAfterWrite()}
+    */
+   TimeUnit timeUnit() default TimeUnit.MILLISECONDS;
+}
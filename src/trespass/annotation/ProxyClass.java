@@ -25,4 +25,22 @@ public @interface ProxyClass
     * Fully qualified name of the target class for the annotated interface
     */
    String targetClassName() default "";
+   /**
+    * When set to true, proxies created for the annotated interface will be canonical:
+    * {@link trespass.Factory#createProxy} will always return the same proxy if the interface doesn't
+    * declare a {@link DefaultInstanceProvider} and {@link trespass.Factory#createProxyToObject}
+    * will always return the same proxy for the same target object (compared by identity),
+    * for as long as that proxy is reachable. Canonical proxies never prevent their target objects
+    * from being garbage collected, which also means that a proxy that is no longer referenced
+    * anywhere else will be replaced by a new one after it is collected.
+    */
+   boolean canonical() default false;
+   /**
+    * When set to true, only the target class and the {@link DefaultInstanceProvider} of the annotated
+    * interface will be validated when its first proxy is created. Every other method will only be
+    * validated when it's first invoked, which is cheaper for large interfaces of which only a few
+    * methods are actually used. Can be overridden by setting system property
+    * {@value trespass.Factory#STRICT_VALIDATION_PROPERTY} to true.
+    */
+   boolean lazyValidation() default false;
 }
@@ -8,7 +8,12 @@ import java.lang.annotation.Target;
 /**
  * Annotate methods in an interface extending {@link trespass.Trespasser} in order
  * to give the method the semantics of a field accessor to the named field
- * declared in the target class
+ * declared in the target class.
+ *
+ * <p>The named field may also be a dot-separated path of fields, such as "a.b.c", in which case
+ * each field is looked up in the declared type of the previous one and the whole path is resolved
+ * only once. Getters then read the last field of the path and setters write it.</p>
+ *
  * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
  * @version $Revision$
  */
@@ -20,4 +25,10 @@ public @interface ProxyField {
     * mapped by the proxy interface declaring the annotated method
     */
    String value() default "";
+   /**
+    * When the value is a path of fields, defines what happens if a null reference is found
+    * while traversing it. If false, a {@link NullPointerException} will be thrown. If true, getters will
+    * return null, or zero/false for primitive types, and setters will do nothing.
+    */
+   boolean nullSafe() default false;
 }
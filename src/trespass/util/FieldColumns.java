@@ -0,0 +1,213 @@
+package trespass.util;
+
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Provides static utility methods to extract the values of one or more fields, regardless of their
+ * declared visibility, from many instances of a class at once into primitive arrays.
+ *
+ * <p>Values are read via {@link Field#getLong(Object)}, {@link Field#getInt(Object)} or
+ * {@link Field#getDouble(Object)}, so they are never boxed, and each field is resolved only once per
+ * extraction. Narrower primitive fields are widened as usual. Large inputs can optionally be split
+ * across all available cores.</p>
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+public final class FieldColumns {
+
+   // below this many instances per task, splitting the work further isn't worth it
+   private static final int PARALLEL_CHUNK_SIZE = 8192;
+
+   // disallow construction
+   private FieldColumns() {}
+
+   public static long[] extractLongs(final Class<?> clazz, final String fieldName,
+                                     final Object[] instances, final boolean parallel) {
+      return extractLongs(clazz, new String[] {fieldName}, instances, parallel)[0];
+   }
+
+   public static long[] extractLongs(final Class<?> clazz, final String fieldName,
+                                     final Collection<?> instances, final boolean parallel) {
+      return extractLongs(clazz, fieldName, instances.toArray(), parallel);
+   }
+
+   /**
+    * @return One array of values per given field name, in the same order
+    */
+   public static long[][] extractLongs(final Class<?> clazz, final String[] fieldNames,
+                                       final Object[] instances, final boolean parallel) {
+      final long[][] values = new long[fieldNames.length][instances.length];
+      final Column[] columns = new Column[fieldNames.length];
+      for (int i = 0; i < columns.length; i++) {
+         columns[i] = new LongColumn(ReflectionUtils.getInternalField(clazz, fieldNames[i]), values[i]);
+      }
+      extract(columns, instances, parallel);
+      return values;
+   }
+
+   public static long[][] extractLongs(final Class<?> clazz, final String[] fieldNames,
+                                       final Collection<?> instances, final boolean parallel) {
+      return extractLongs(clazz, fieldNames, instances.toArray(), parallel);
+   }
+
+   public static int[] extractInts(final Class<?> clazz, final String fieldName,
+                                   final Object[] instances, final boolean parallel) {
+      return extractInts(clazz, new String[] {fieldName}, instances, parallel)[0];
+   }
+
+   public static int[] extractInts(final Class<?> clazz, final String fieldName,
+                                   final Collection<?> instances, final boolean parallel) {
+      return extractInts(clazz, fieldName, instances.toArray(), parallel);
+   }
+
+   /**
+    * @return One array of values per given field name, in the same order
+    */
+   public static int[][] extractInts(final Class<?> clazz, final String[] fieldNames,
+                                     final Object[] instances, final boolean parallel) {
+      final int[][] values = new int[fieldNames.length][instances.length];
+      final Column[] columns = new Column[fieldNames.length];
+      for (int i = 0; i < columns.length; i++) {
+         columns[i] = new IntColumn(ReflectionUtils.getInternalField(clazz, fieldNames[i]), values[i]);
+      }
+      extract(columns, instances, parallel);
+      return values;
+   }
+
+   public static int[][] extractInts(final Class<?> clazz, final String[] fieldNames,
+                                     final Collection<?> instances, final boolean parallel) {
+      return extractInts(clazz, fieldNames, instances.toArray(), parallel);
+   }
+
+   public static double[] extractDoubles(final Class<?> clazz, final String fieldName,
+                                         final Object[] instances, final boolean parallel) {
+      return extractDoubles(clazz, new String[] {fieldName}, instances, parallel)[0];
+   }
+
+   public static double[] extractDoubles(final Class<?> clazz, final String fieldName,
+                                         final Collection<?> instances, final boolean parallel) {
+      return extractDoubles(clazz, fieldName, instances.toArray(), parallel);
+   }
+
+   /**
+    * @return One array of values per given field name, in the same order
+    */
+   public static double[][] extractDoubles(final Class<?> clazz, final String[] fieldNames,
+                                           final Object[] instances, final boolean parallel) {
+      final double[][] values = new double[fieldNames.length][instances.length];
+      final Column[] columns = new Column[fieldNames.length];
+      for (int i = 0; i < columns.length; i++) {
+         columns[i] = new DoubleColumn(ReflectionUtils.getInternalField(clazz, fieldNames[i]), values[i]);
+      }
+      extract(columns, instances, parallel);
+      return values;
+   }
+
+   public static double[][] extractDoubles(final Class<?> clazz, final String[] fieldNames,
+                                           final Collection<?> instances, final boolean parallel) {
+      return extractDoubles(clazz, fieldNames, instances.toArray(), parallel);
+   }
+
+   private static void extract(final Column[] columns, final Object[] instances, final boolean parallel) {
+      if (parallel && instances.length > PARALLEL_CHUNK_SIZE) {
+         ForkJoinPool.commonPool().invoke(new ExtractionTask(columns, instances, 0, instances.length));
+      } else {
+         extract(columns, instances, 0, instances.length);
+      }
+   }
+
+   private static void extract(final Column[] columns, final Object[] instances,
+                               final int from, final int to) {
+      try {
+         // read each instance once for all columns, rather than making one pass per column
+         for (int i = from; i < to; i++) {
+            final Object instance = instances[i];
+            for (Column column : columns) {
+               column.extract(instance, i);
+            }
+         }
+      } catch (final IllegalAccessException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   private static final class ExtractionTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final Column[] columns;
+      private final Object[] instances;
+      private final int from;
+      private final int to;
+
+      private ExtractionTask(final Column[] columns, final Object[] instances, final int from, final int to) {
+         this.columns = columns;
+         this.instances = instances;
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+         if (to - from <= PARALLEL_CHUNK_SIZE) {
+            extract(columns, instances, from, to);
+         } else {
+            final int middle = (from + to) >>> 1;
+            invokeAll(new ExtractionTask(columns, instances, from, middle),
+                      new ExtractionTask(columns, instances, middle, to));
+         }
+      }
+   }
+
+   private static abstract class Column {
+      final Field field;
+
+      Column(final Field field) {
+         this.field = field;
+      }
+
+      abstract void extract(Object instance, int index) throws IllegalAccessException;
+   }
+
+   private static final class LongColumn extends Column {
+      private final long[] values;
+
+      LongColumn(final Field field, final long[] values) {
+         super(field);
+         this.values = values;
+      }
+
+      void extract(final Object instance, final int index) throws IllegalAccessException {
+         values[index] = field.getLong(instance);
+      }
+   }
+
+   private static final class IntColumn extends Column {
+      private final int[] values;
+
+      IntColumn(final Field field, final int[] values) {
+         super(field);
+         this.values = values;
+      }
+
+      void extract(final Object instance, final int index) throws IllegalAccessException {
+         values[index] = field.getInt(instance);
+      }
+   }
+
+   private static final class DoubleColumn extends Column {
+      private final double[] values;
+
+      DoubleColumn(final Field field, final double[] values) {
+         super(field);
+         this.values = values;
+      }
+
+      void extract(final Object instance, final int index) throws IllegalAccessException {
+         values[index] = field.getDouble(instance);
+      }
+   }
+}
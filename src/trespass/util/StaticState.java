@@ -0,0 +1,194 @@
+package trespass.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of the values of all static fields declared by a set of classes, regardless of their
+ * declared visibility, that can later be restored. Useful to isolate tests that change static state
+ * without having to fork a new JVM for each one of them.
+ *
+ * <p>The static fields of each class are resolved only once, via {@link ReflectionUtils#getInternalField},
+ * and primitive values are kept unboxed.
+ * Final static fields are only captured when the running JVM allows them to be written via reflection,
+ * which isn't the case since Java 12. Values are captured shallowly, so objects referenced by static
+ * fields are restored as references, not as copies of their state at capture time.</p>
+ *
+ * @author <a target="github" href="https://github.com/errodrigues">Eduardo Rodrigues</a>
+ * @version $Revision$
+ */
+public final class StaticState {
+
+   // a ClassValue doesn't keep captured classes, nor their class loaders, from being unloaded
+   private static final ClassValue<Layout> layouts = new ClassValue<Layout>() {
+      @Override
+      protected Layout computeValue(final Class<?> type) {
+         return new Layout(type);
+      }
+   };
+   private static final Field MODIFIERS = getModifiersField();
+
+   private final Layout[] classes;
+   private final long[][] primitives;
+   private final Object[][] references;
+
+   private StaticState(final Layout[] classes) {
+      this.classes = classes;
+      this.primitives = new long[classes.length][];
+      this.references = new Object[classes.length][];
+   }
+
+   /**
+    * Captures the current values of all static fields declared by the given classes.
+    */
+   public static StaticState capture(final Class<?>... classes) {
+      final Layout[] resolved = new Layout[classes.length];
+      for (int i = 0; i < classes.length; i++) {
+         resolved[i] = layouts.get(classes[i]);
+      }
+      final StaticState state = new StaticState(resolved);
+      try {
+         for (int i = 0; i < resolved.length; i++) {
+            state.primitives[i] = resolved[i].capturePrimitives();
+            state.references[i] = resolved[i].captureReferences();
+         }
+      } catch (final IllegalAccessException ex) {
+         throw new RuntimeException(ex);
+      }
+      return state;
+   }
+
+   /**
+    * Restores all captured static fields to the values they had when this snapshot was captured.
+    * May be called any number of times.
+    */
+   public void restore() {
+      try {
+         for (int i = 0; i < classes.length; i++) {
+            classes[i].restorePrimitives(primitives[i]);
+            classes[i].restoreReferences(references[i]);
+         }
+      } catch (final IllegalAccessException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   private static Field getModifiersField() {
+      // not via ReflectionUtils.getInternalField, which would print the expected failure's stack trace
+      try {
+         final Field f = Field.class.getDeclaredField("modifiers");
+         f.setAccessible(true);
+         return f;
+      } catch (final Exception ex) {
+         // not available since Java 12, in which case final fields can't be restored
+         return null;
+      }
+   }
+
+   /**
+    * @return Whether the given field can be captured and restored, making it writable if necessary
+    */
+   private static boolean makeWritable(final Field field) {
+      if (!Modifier.isFinal(field.getModifiers())) {
+         return true;
+      }
+      if (MODIFIERS == null || field.isSynthetic()) {
+         return false;
+      }
+      try {
+         MODIFIERS.setInt(field, field.getModifiers() & ~Modifier.FINAL);
+         return true;
+      } catch (final IllegalAccessException ex) {
+         return false;
+      }
+   }
+
+   /**
+    * The static fields declared by one class, split between primitive and reference ones.
+    */
+   private static final class Layout {
+      private final Field[] primitiveFields;
+      private final Class<?>[] primitiveTypes;
+      private final Field[] referenceFields;
+
+      private Layout(final Class<?> clazz) {
+         final List<Field> primitives = new ArrayList<Field>();
+         final List<Field> references = new ArrayList<Field>();
+         for (Field declared : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(declared.getModifiers())) {
+               final Field f = ReflectionUtils.getInternalField(clazz, declared.getName());
+               if (makeWritable(f)) {
+                  (f.getType().isPrimitive() ? primitives : references).add(f);
+               }
+            }
+         }
+         this.primitiveFields = primitives.toArray(new Field[primitives.size()]);
+         this.referenceFields = references.toArray(new Field[references.size()]);
+         this.primitiveTypes = new Class<?>[primitiveFields.length];
+         for (int i = 0; i < primitiveFields.length; i++) {
+            primitiveTypes[i] = primitiveFields[i].getType();
+         }
+      }
+
+      private long[] capturePrimitives() throws IllegalAccessException {
+         final long[] values = new long[primitiveFields.length];
+         for (int i = 0; i < values.length; i++) {
+            final Field f = primitiveFields[i];
+            final Class<?> type = primitiveTypes[i];
+            if (type == boolean.class) {
+               values[i] = f.getBoolean(null) ? 1 : 0;
+            } else if (type == float.class) {
+               values[i] = Float.floatToRawIntBits(f.getFloat(null));
+            } else if (type == double.class) {
+               values[i] = Double.doubleToRawLongBits(f.getDouble(null));
+            } else if (type == char.class) {
+               values[i] = f.getChar(null);
+            } else {
+               values[i] = f.getLong(null);
+            }
+         }
+         return values;
+      }
+
+      private Object[] captureReferences() throws IllegalAccessException {
+         final Object[] values = new Object[referenceFields.length];
+         for (int i = 0; i < values.length; i++) {
+            values[i] = referenceFields[i].get(null);
+         }
+         return values;
+      }
+
+      private void restorePrimitives(final long[] values) throws IllegalAccessException {
+         for (int i = 0; i < values.length; i++) {
+            final Field f = primitiveFields[i];
+            final Class<?> type = primitiveTypes[i];
+            final long value = values[i];
+            if (type == int.class) {
+               f.setInt(null, (int)value);
+            } else if (type == long.class) {
+               f.setLong(null, value);
+            } else if (type == boolean.class) {
+               f.setBoolean(null, value != 0);
+            } else if (type == double.class) {
+               f.setDouble(null, Double.longBitsToDouble(value));
+            } else if (type == float.class) {
+               f.setFloat(null, Float.intBitsToFloat((int)value));
+            } else if (type == short.class) {
+               f.setShort(null, (short)value);
+            } else if (type == byte.class) {
+               f.setByte(null, (byte)value);
+            } else {
+               f.setChar(null, (char)value);
+            }
+         }
+      }
+
+      private void restoreReferences(final Object[] values) throws IllegalAccessException {
+         for (int i = 0; i < values.length; i++) {
+            referenceFields[i].set(null, values[i]);
+         }
+      }
+   }
+}